@@ -8,9 +8,6 @@ import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import com.raverun.coreutil.api.ContentObserver;
 import com.raverun.coreutil.api.FileTailer;
@@ -126,7 +123,8 @@ public class App
     }
 
     /**
-     * This <b>SHOULD</b> a blocking call
+     * This is a blocking call. The file is read on the calling thread via
+     * {@link FileTailer#readLast()}, so no threads are started.
      *
      * @param filename
      * @return exit status for the shell
@@ -134,14 +132,9 @@ public class App
     private static int handleFile( String filename, boolean outputFilenameHeader, 
       int numberOfLines, boolean enableDebug, boolean multipleFiles ) {
         final int[] exitStatus = { 0 };
-        final boolean[] indicator = { false };
-
-        final Lock lock = new ReentrantLock();
-        final Condition finished = lock.newCondition();
 
         final File targetFile = new File( filename );
         try {
-            lock.lock();
             FileTailer.Builder builder = new FileTailer.Builder( targetFile );
 
             if( outputFilenameHeader && multipleFiles )
@@ -154,37 +147,15 @@ public class App
             tailer.addObserver( new ContentObserver() {
                 @Override
                 public void onFinishNormal() {
-//                    System.out.println( "[App] onFinishNormal()" );
                     System.out.println( EMPTY );
-                    try {
-                        lock.lock();
-                        exitStatus[ 0 ] = 0;
-                        indicator[ 0 ] = true;
-                        finished.signal();
-                    }
-                    finally {
-                        lock.unlock();
-                        tailer.turnOff();
-//                        System.out.println( "[App] invoked turnOff" );
-                    }
+                    exitStatus[ 0 ] = 0;
                 }
 
                 @Override
                 public void onFinishWithException( String error ) {
-//                    System.out.println( "[App] onFinishWithException" );
                     System.out.println( error );
                     System.out.println( EMPTY );
-                    try {
-                        lock.lock();
-                        exitStatus[ 0 ] = 1;
-                        indicator[ 0 ] = true;
-                        finished.signal();
-                    }
-                    finally {
-                        lock.unlock();
-                        tailer.turnOff();
-//                        System.out.println( "[App] invoked turnOff" );
-                    }
+                    exitStatus[ 0 ] = 1;
                 }
 
                 @Override
@@ -192,24 +163,13 @@ public class App
                     System.out.println( line );
                 }
             } );
-            tailer.turnOn();
-//            tailer.waitInterruptibly();
-
-            while( ! indicator[0] )
-                finished.await();
+            tailer.readLast();
         } 
         catch( FileNotFoundException fnfe ) {
             System.err.println( "tailog: cannot open '" 
                 + targetFile.getName() + "' for reading: No such file or directory" );
             exitStatus[ 0 ] = 1;
         } 
-        catch( InterruptedException e ) {
-            e.printStackTrace();
-            exitStatus[ 0 ] = 1;
-        }
-        finally {
-            lock.unlock();
-        }
 
         return exitStatus[ 0 ];
     }
@@ -1,17 +1,14 @@
 package com.raverun.coreutil.api;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -20,6 +17,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.Validate;
 
 
@@ -38,6 +36,8 @@ import org.apache.commons.lang.Validate;
  * tailer.turnOn();
  * }
  * </pre>
+ * For a one-shot read, {@link #readLast()} delivers the same callbacks on the
+ * caller's thread instead of {@link #turnOn()}.
  *
  * @author Gavin Bong
  */
@@ -88,6 +88,7 @@ public final class FileTailer {
             info( TAG_FILETAILER, "turning on" );
             _consumerTask = new ObserverNotifierTask();
             _producerTask = new RetrieveLinesTask();
+            _executorPool = Executors.newCachedThreadPool();
             _executorPool.execute( _producerTask );
             _executorPool.execute( _consumerTask );
         }
@@ -106,12 +107,59 @@ public final class FileTailer {
         if( _consumerTask != null )
             _consumerTask.cancel();
 
-        _executorPool.shutdown();
+        if( _executorPool != null )
+            _executorPool.shutdown();
 
 //        _producerTask.join();
 //        _consumerTask.join();
     }
 
+    /**
+     * Reads the last lines of the file on the caller's thread and hands them 
+     * straight to the observers. No threads or queues are involved, so this is 
+     * the cheap alternative to {@link #turnOn()} for a one-shot read.
+     * <p>
+     * Notes: 
+     * <ul>
+     * <li>observers receive {@link ContentObserver#onNewLine(String)} for each line, 
+     * followed by either {@link ContentObserver#onFinishNormal()} or 
+     * {@link ContentObserver#onFinishWithException(String)} before this method returns</li>
+     * <li>this method can be called once, and not after {@link #turnOn()}</li>
+     * </ul>
+     *
+     * @throws IllegalStateException if this tailer has already been started
+     */
+    public void readLast() {
+        if( ! _flag.compareAndSet( false, true ) )
+            throw new IllegalStateException( "tailer has already been started" );
+
+        info( TAG_FILETAILER, "reading on the caller's thread" );
+        try {
+            if( _numberOfLines > 0 ) {
+                readFile( new LineSink() {
+                    public void onLine( String line ) {
+                        notifyObservers( line );
+                    }
+
+                    public void onSuppressed( long count ) {
+                        notifyObserversSuppressed( count );
+                    }
+
+                    public void onRepeated( String line, long times ) {
+                        notifyObserversRepeated( line, times );
+                    }
+                } );
+            }
+            notifyObserversFinish( true, null );
+        }
+        catch( IOException ioe ) {
+            notifyObserversFinish( false, ioe.getMessage() + "" );
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void notifyObservers( String line ) {
         if( line != null ) {
             for( ContentObserver anObserver : _observers ) {
@@ -120,6 +168,20 @@ public final class FileTailer {
         }
     }
 
+    private void notifyObserversSuppressed( long count ) {
+        for( ContentObserver anObserver : _observers ) {
+            if( anObserver instanceof SummaryObserver )
+                ((SummaryObserver)anObserver).onLinesSuppressed( count );
+        }
+    }
+
+    private void notifyObserversRepeated( String line, long times ) {
+        for( ContentObserver anObserver : _observers ) {
+            if( anObserver instanceof SummaryObserver )
+                ((SummaryObserver)anObserver).onLineRepeated( line, times );
+        }
+    }
+
     private void notifyObserversFinish( boolean normal, String error ) {
         for( ContentObserver anObserver : _observers ) {
             if( normal )
@@ -144,16 +206,21 @@ public final class FileTailer {
         public void run() {
             try {
                 while( _running ) {
-                    String line = _queue.take();
-                    //FileTailer.info( TAG_TASK, "received -> " + line );
+                    Object item = _queue.take();
+                    //FileTailer.info( TAG_TASK, "received -> " + item );
 
-                    if( line == POISON_MESSAGE ) {
+                    if( item == POISON_MESSAGE ) {
                         notifyObserversFinish( true, null );
                         Thread.sleep( 100 );
                         break;
                     }
 
-                    notifyObservers( line );
+                    if( item instanceof SuppressedNotice )
+                        notifyObserversSuppressed( ((SuppressedNotice)item).count );
+                    else if( item instanceof RepeatedNotice )
+                        notifyObserversRepeated( ((RepeatedNotice)item).line, ((RepeatedNotice)item).times );
+                    else
+                        notifyObservers( (String)item );
                 }
             } 
             catch( InterruptedException e ) {
@@ -191,18 +258,22 @@ public final class FileTailer {
                     return;
                 }
 
-                if( isEmptyFile() ) {
-                    debug( TAG_TASK, "file is empty" );
-                    sendPoison();
-                    return;
-                }
+                readFile( new LineSink() {
+                    public void onLine( String line ) throws InterruptedException {
+                        _queue.put( line );
+                        debug( TAG_TASK, "added -> " + line );
+                    }
 
-                Deque<String> lines = readFile();
-                for( String line : lines ) {
-                    _queue.put( line );
-                    debug( TAG_TASK, "added -> " + line );
-                    Thread.sleep( 10 );
-                }
+                    public void onSuppressed( long count ) throws InterruptedException {
+                        _queue.put( new SuppressedNotice( count ) );
+                        debug( TAG_TASK, "suppressed -> " + count );
+                    }
+
+                    public void onRepeated( String line, long times ) throws InterruptedException {
+                        _queue.put( new RepeatedNotice( line, times ) );
+                        debug( TAG_TASK, "repeated " + times + " times -> " + line );
+                    }
+                } );
 
                 // NOTE: this is not the poison message (for testing)
                 //_queue.put( "poison" ); 
@@ -231,142 +302,191 @@ public final class FileTailer {
             info( TAG_TASK, "sent POISON" );
         }
 
-        private boolean isEmptyFile() throws IOException {
-            RandomAccessFile file = new RandomAccessFile( _file, "r" );
-            try {
-                debug( TAG_TASK, "isEmptyFile" );
-                return( file.length() == 0 );
-            }
-            finally {
-                IOUtils.closeQuietly( file );
-            }
+        public void cancel() {
+            interrupt();
         }
 
-        private LineReaderResult readFully( RandomAccessFile file, long startFilePointer, int bufferSize ) throws IOException {
-            debug( TAG_TASK, "readFully - seek to pointer " + startFilePointer );
-            file.seek( startFilePointer );
+        private final String TAG_TASK = "RetrieveLinesTask";
+    }
 
-            byte[] b = new byte[bufferSize];
-            final int[] read = {0};
+    /**
+     * Destination of the lines read by {@link FileTailer#readFile(LineSink)}
+     */
+    private static interface LineSink {
+        void onLine( String line ) throws InterruptedException;
+        void onSuppressed( long count ) throws InterruptedException;
+        void onRepeated( String line, long times ) throws InterruptedException;
+    }
 
-            read[0] = file.read( b );
-            debug( TAG_TASK, "readFully - read bytes " + read[0] );
+    /**
+     * Queued between lines to report those dropped by the {@link LineThrottle}
+     */
+    private static final class SuppressedNotice {
+        SuppressedNotice( long count ) {
+            this.count = count;
+        }
 
-            if( read[0] <= 0 )
-                return new LineReaderResult() {
-                    public Deque<String> lines() { return new ArrayDeque<String>(0); }
-                    public int numberOfBytesRead() { return 0; }
-                };
+        final long count;
+    }
 
-            BufferedReader reader = new BufferedReader( 
-                new InputStreamReader( 
-                    new ByteArrayInputStream( b ), Charset.forName( UTF8 ) 
-                )
-            );
+    /**
+     * Queued between lines to report those collapsed by the {@link RepeatCollapser}
+     */
+    private static final class RepeatedNotice {
+        RepeatedNotice( String line, long times ) {
+            this.line = line;
+            this.times = times;
+        }
 
-            final Deque<String> result = new ArrayDeque<String>();
-            String line = null;
-            while( (line = reader.readLine()) != null ) {
-                result.addLast( line );
-                debug( TAG_TASK, "readFully - line=[ " + line + " ]" );
-            }
+        final String line;
+        final long times;
+    }
 
-        // push back the top-most line
-            if( result.peekFirst() != null && result.size() > 1 ) {
-                String first   = result.pollFirst();
-                byte[] firstba = first.getBytes( UTF8 );
-                if( firstba.length > 0 ) {
-                    read[0] = read[0] - (firstba.length + 1);
+    /**
+     * Filters raw lines before decoding them for the sink. Repeats are 
+     * collapsed first so that a retry storm does not use up the rate limit;
+     * only lines that pass every stage are remembered for collapsing, so each
+     * repeat count refers to a line the observers have seen.
+     */
+    private class LinePipeline implements LineScanner.Handler {
+        LinePipeline( LineSink sink ) {
+            _sink = sink;
+            _throttle = newThrottle();
+            _collapser = (_repeatWindow > 0) ? new RepeatCollapser( _repeatWindow ) : null;
+            _repeatHandler = new RepeatCollapser.Handler() {
+                public void onRepeated( byte[] buf, int offset, int length, long times ) 
+                  throws InterruptedException {
+                    _sink.onRepeated( new String( buf, offset, length, UTF8 ), times );
                 }
+            };
+        }
+
+        public void onLine( byte[] buf, int offset, int length ) throws InterruptedException {
+            if( _collapser != null && _collapser.collapse( buf, offset, length ) )
+                return;
+
+            if( _throttle != null ) {
+                long now = System.nanoTime();
+                boolean keep = _throttle.admit( now );
+                long suppressed = _throttle.summaryDue( now );
+                if( suppressed > 0 )
+                    _sink.onSuppressed( suppressed );
+                if( ! keep )
+                    return;
             }
 
-            return new LineReaderResult() {
-                public Deque<String> lines() { return result; }
-                public int numberOfBytesRead() { return read[0]; }
-            };
+            if( _collapser != null ) {
+                _collapser.drain( _repeatHandler );
+                _collapser.remember( buf, offset, length );
+            }
+            _sink.onLine( new String( buf, offset, length, UTF8 ) );
         }
 
-        private Deque<String> readFile() throws IOException {
-           final Deque<String> sink = new ArrayDeque<String>();
-
-           RandomAccessFile file = new RandomAccessFile( _file, "r" );
-           int targetNoOfLines = _numberOfLines;
-           debug( TAG_TASK, "readFile: searching for last " + _numberOfLines + " lines" );
-
-           try {
-               debug( TAG_TASK, "file size=" + file.length() );
-               file.seek( file.length() );
-               debug( TAG_TASK, "starting filepointer after seek to length=" + file.getFilePointer() );
-
-               /**
-                * will keep changing to reflect how far back from the EOF we need to seek to
-                */
-               long offset = CAPACITY;
-
-               long size = file.length();
-               debug( TAG_TASK, "offset" + offset );
-
-               while( targetNoOfLines > 0 ) {
-                   if( size < offset )
-                       offset = size;
-
-                   long newPointer = size - (offset);
-                   final LineReaderResult result = readFully( file, newPointer, CAPACITY );
-                   Deque<String> lines = result.lines();
-                   for( String aLine : lines )
-                       debug( TAG_TASK, "\tline={ " + aLine + " }" );
-
-                   if( targetNoOfLines > 0  ) {
-                       if( targetNoOfLines > lines.size() ) {
-                       // -- continue to read some more after this
-                           Iterator<String> iter = lines.descendingIterator();
-                           while( iter.hasNext() )
-                               sink.addFirst( iter.next() );
-
-                           targetNoOfLines -= lines.size();
-                           debug( TAG_TASK, "--->targetNoOfLines=" + targetNoOfLines );
-                       } 
-                       else {
-                       // we have enough
-                           Iterator<String> iter = lines.descendingIterator();
-                           while( iter.hasNext() ) {
-                               debug( TAG_TASK, "\ttargetNoOfLines=" + targetNoOfLines );
-                               if( targetNoOfLines == 0 )
-                                   break;
-
-                               sink.addFirst( iter.next() );
-                               targetNoOfLines--;
-                           }
-                           break;
-                       }
-                   }
-
-                   debug( TAG_TASK, "new filepointer=" + file.getFilePointer() );
-
-                   if( offset == size )
-                       break;
-
-                   offset += result.numberOfBytesRead();
-                   debug( TAG_TASK, "===========offset= " + offset + "===================" );
-               }//while
-
-               return sink;
-           }
-           finally {
-               IOUtils.closeQuietly( file );
-           }
+        /**
+         * Reports whatever was collapsed or dropped since the last line
+         */
+        void finish() throws InterruptedException {
+            if( _collapser != null )
+                _collapser.drain( _repeatHandler );
+
+            if( _throttle != null ) {
+                long suppressed = _throttle.drain( System.nanoTime() );
+                if( suppressed > 0 )
+                    _sink.onSuppressed( suppressed );
+            }
         }
 
-        public void cancel() {
-            interrupt();
+        private final LineSink _sink;
+        private final LineThrottle _throttle;
+        private final RepeatCollapser _collapser;
+        private final RepeatCollapser.Handler _repeatHandler;
+    }
+
+    /**
+     * Locates the start of the last {@code _numberOfLines} lines, then streams 
+     * forward from there. Only one buffer's worth of the file is held at a time,
+     * and each line reaches {@code sink} as soon as it has been read.
+     * <p>
+     * If the file holds too few lines and rotated siblings were requested, the
+     * rest are taken from the newest siblings and streamed ahead of the file.
+     * A sibling that breaks while being streamed fails the read, since 
+     * carrying on would leave a gap in the output.
+     * <p>
+     * Collapsing, sampling and rate limiting, if configured, are applied to 
+     * the raw bytes so that dropped lines are never decoded.
+     */
+    private void readFile( LineSink sink ) throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile( _file, "r" );
+        debug( TAG_READER, "readFile: searching for last " + _numberOfLines + " lines" );
+
+        try {
+            long size = file.length();
+            debug( TAG_READER, "file size=" + size );
+
+            LineScanner.Start start = LineScanner.findStartOfLastLines( file, size, _numberOfLines, BUFFER_SIZE );
+            debug( TAG_READER, "last " + start.lines + " lines start at " + start.offset );
+
+            LinePipeline pipeline = new LinePipeline( sink );
+            if( _includeRotated && start.lines < _numberOfLines ) {
+                for( RotatedFileSet.Segment segment : selectRotated( _numberOfLines - start.lines ) ) {
+                    debug( TAG_READER, "reading rotated " + segment );
+                    segment.scan( BUFFER_SIZE, pipeline );
+                }
+            }
+
+            InputStream in = new BoundedInputStream( 
+                Channels.newInputStream( file.getChannel().position( start.offset ) ), size - start.offset );
+            LineScanner.scan( in, BUFFER_SIZE, pipeline );
+            pipeline.finish();
         }
+        finally {
+            IOUtils.closeQuietly( file );
+        }
+    }
 
-        private final String TAG_TASK = "RetrieveLinesTask";
+    /**
+     * Walks the rotated siblings newest first until {@code wanted} lines are 
+     * found. Reading them is best-effort: the walk ends at the first sibling 
+     * that cannot be read, such as a .gz still being written by logrotate, 
+     * and the lines found so far are kept.
+     *
+     * @return the segments to stream, oldest first
+     */
+    private List<RotatedFileSet.Segment> selectRotated( long wanted ) {
+        List<RotatedFileSet.Segment> segments = new ArrayList<RotatedFileSet.Segment>();
+        for( File sibling : RotatedFileSet.olderSiblings( _file ) ) {
+            if( wanted <= 0 )
+                break;
+
+            RotatedFileSet.Segment segment;
+            try {
+                segment = RotatedFileSet.select( sibling, wanted, BUFFER_SIZE );
+            }
+            catch( IOException ioe ) {
+                debug( TAG_READER, "stopping at unreadable rotated " + sibling.getName() + ": " + ioe.getMessage() );
+                break;
+            }
+            segments.add( segment );
+            wanted -= segment.lines;
+        }
+
+        Collections.reverse( segments );
+        return segments;
     }
 
-    static interface LineReaderResult {
-        Deque<String> lines();
-        int numberOfBytesRead();
+    /**
+     * @return null if neither sampling nor rate limiting was requested
+     */
+    private LineThrottle newThrottle() {
+        if( _sampleOneIn <= 1 && _linesPerSecond <= 0 )
+            return null;
+
+        long now = System.nanoTime();
+        TokenBucket bucket = null;
+        if( _linesPerSecond > 0 )
+            bucket = new TokenBucket( _linesPerSecond, _burst, now );
+
+        return new LineThrottle( _sampleOneIn, bucket, SUMMARY_INTERVAL_NANOS, now );
     }
 
     /*
@@ -399,7 +519,7 @@ public final class FileTailer {
          */
         public Builder( File file ) throws FileNotFoundException {
             Validate.notNull( file, "file must not be null" );
-            new RandomAccessFile( file, "r" ); // fail early
+            IOUtils.closeQuietly( new RandomAccessFile( file, "r" ) ); // fail early
             builderFile = file;
         }
 
@@ -425,6 +545,70 @@ public final class FileTailer {
             return this;
         }
 
+        /**
+         * Keep only the first line and every {@code n}-th line after it.
+         * Dropped lines are reported to observers implementing
+         * {@link SummaryObserver#onLinesSuppressed(long)}.
+         *
+         * @param n - sampling interval; 1 keeps every line
+         * @return the same instance of {@code Builder}
+         * @throws IllegalArgumentException if {@code n} is less than 1
+         */
+        public Builder sampleOneIn( int n ) {
+            Validate.isTrue( n >= 1, "sampling interval must be at least 1" );
+            builderSampleOneIn = n;
+            return this;
+        }
+
+        /**
+         * Limit the lines handed to observers with a token bucket. Lines over the
+         * limit are reported to observers implementing {@link SummaryObserver#onLinesSuppressed(long)}.
+         *
+         * @param linesPerSecond - sustained rate
+         * @param burst - number of lines allowed through at once
+         * @return the same instance of {@code Builder}
+         * @throws IllegalArgumentException if either argument is not positive
+         */
+        public Builder rateLimit( int linesPerSecond, int burst ) {
+            Validate.isTrue( linesPerSecond > 0, "rate must be positive" );
+            Validate.isTrue( burst > 0, "burst must be positive" );
+            builderLinesPerSecond = linesPerSecond;
+            builderBurst = burst;
+            return this;
+        }
+
+        /**
+         * Collapse a line that repeats one of the last {@code window} distinct lines
+         * into a count, reported to observers implementing 
+         * {@link SummaryObserver#onLineRepeated(String, long)} just before the 
+         * next line that is passed on. A window of 1 collapses 
+         * consecutive repeats only.
+         *
+         * @param window - number of distinct lines remembered, at most 64
+         * @return the same instance of {@code Builder}
+         * @throws IllegalArgumentException if {@code window} is not between 1 and 64
+         */
+        public Builder collapseRepeats( int window ) {
+            Validate.isTrue( window >= 1 && window <= MAX_REPEAT_WINDOW, 
+                "repeat window must be between 1 and " + MAX_REPEAT_WINDOW );
+            builderRepeatWindow = window;
+            return this;
+        }
+
+        /**
+         * If the file holds fewer lines than asked for, continue into its rotated 
+         * siblings such as {@code <file>.1} and {@code <file>.2.gz}. Only as many
+         * siblings as needed are opened. See {@link RotatedFileSet} for the 
+         * naming schemes understood.
+         *
+         * @param include - set to true to read from rotated siblings
+         * @return the same instance of {@code Builder}
+         */
+        public Builder includeRotated( boolean include ) {
+            builderIncludeRotated = include;
+            return this;
+        }
+
         /**
          * Currently this is not used internally 
          */
@@ -434,24 +618,35 @@ public final class FileTailer {
         }
 
         public FileTailer build() {
-            return new FileTailer( builderFile, builderNoOfLines, builderFollow, builderDebug );
+            return new FileTailer( builderFile, builderNoOfLines, builderFollow, builderDebug,
+                builderSampleOneIn, builderLinesPerSecond, builderBurst, builderRepeatWindow, builderIncludeRotated );
         }
 
         private File builderFile;
         private int builderNoOfLines = 10;
         private boolean builderFollow = false;
         private boolean builderDebug = false;
+        private int builderSampleOneIn = 1;
+        private int builderLinesPerSecond = 0;
+        private int builderBurst = 0;
+        private int builderRepeatWindow = 0;
+        private boolean builderIncludeRotated = false;
     }
 
-    private FileTailer( File file, int numberOfLines, boolean follow, boolean debug ) {
+    private FileTailer( File file, int numberOfLines, boolean follow, boolean debug,
+      int sampleOneIn, int linesPerSecond, int burst, int repeatWindow, boolean includeRotated ) {
         _file = file;
         _numberOfLines = numberOfLines;
         _follow = follow;
         _debug = debug;
+        _sampleOneIn = sampleOneIn;
+        _linesPerSecond = linesPerSecond;
+        _burst = burst;
+        _repeatWindow = repeatWindow;
+        _includeRotated = includeRotated;
 
-        _queue = new ArrayBlockingQueue<String>( CAPACITY );
+        _queue = new ArrayBlockingQueue<Object>( CAPACITY );
         _observers = new ArrayList<ContentObserver>(2);
-        _executorPool = Executors.newCachedThreadPool();
     }
 
     private volatile RetrieveLinesTask _producerTask;
@@ -460,6 +655,11 @@ public final class FileTailer {
     private final File _file;
     private final int _numberOfLines;
     private final boolean _debug;
+    private final int _sampleOneIn;
+    private final int _linesPerSecond;
+    private final int _burst;
+    private final int _repeatWindow;
+    private final boolean _includeRotated;
 
     /**
      * Not implemented yet
@@ -467,13 +667,20 @@ public final class FileTailer {
     @SuppressWarnings("unused")
     private final boolean _follow;
 
-    private final static String UTF8 = "UTF-8";
+    private final static Charset UTF8 = Charset.forName( "UTF-8" );
     private final static int CAPACITY = 1024;
+    private final static int BUFFER_SIZE = 8192;
+    private final static long SUMMARY_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    private final static int MAX_REPEAT_WINDOW = 64;
     private final static String TAG_FILETAILER = "FileTailer";
+    private final static String TAG_READER = "FileTailer.read";
     private final static String POISON_MESSAGE = new String("poison");
 
-    private final ExecutorService _executorPool;
-    private final BlockingQueue<String> _queue;
+    private volatile ExecutorService _executorPool;
+    /**
+     * Holds lines, {@link SuppressedNotice}s, {@link RepeatedNotice}s and finally the POISON_MESSAGE
+     */
+    private final BlockingQueue<Object> _queue;
     private final List<ContentObserver> _observers;
     private final AtomicBoolean _flag = new AtomicBoolean( false );
 }
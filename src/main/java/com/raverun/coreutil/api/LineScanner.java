@@ -0,0 +1,166 @@
+package com.raverun.coreutil.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+
+/**
+ * Splits raw bytes into lines without decoding them.
+ * <p>
+ * A line is terminated by '\n', '\r' or "\r\n", the same rules as
+ * {@link java.io.BufferedReader#readLine()}. Both directions work on a fixed
+ * size buffer, so memory use does not depend on how many lines are wanted.
+ */
+final class LineScanner {
+
+    /**
+     * Receives each line found by {@link LineScanner#scan(InputStream, int, Handler)}
+     */
+    static interface Handler {
+        /**
+         * The bytes are only valid for the duration of the call.
+         *
+         * @param buf - holds the line, without its terminator
+         * @param offset - start of the line in {@code buf}
+         * @param length - number of bytes in the line, possibly zero
+         */
+        void onLine( byte[] buf, int offset, int length ) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Where the last lines of a file begin
+     */
+    static final class Start {
+        Start( long offset, long lines ) {
+            this.offset = offset;
+            this.lines = lines;
+        }
+
+        /**
+         * byte offset of the first line
+         */
+        final long offset;
+
+        /**
+         * number of lines from {@code offset} to the end
+         */
+        final long lines;
+    }
+
+    /**
+     * Scans backwards from {@code length} to find where the last
+     * {@code numberOfLines} lines begin.
+     *
+     * @param file - the file to scan
+     * @param length - number of bytes of {@code file} to consider
+     * @param numberOfLines - the number of lines wanted
+     * @param bufferSize - number of bytes read at a time
+     * @return the start of the wanted lines; offset zero and fewer lines if the file is shorter
+     * @throws java.io.EOFException if the file shrank below {@code length}
+     */
+    static Start findStartOfLastLines( RandomAccessFile file, long length, long numberOfLines,
+      int bufferSize ) throws IOException {
+        if( numberOfLines <= 0 || length == 0 )
+            return new Start( length, 0 );
+
+        byte[] b = new byte[bufferSize];
+        long wanted = numberOfLines;
+        int next = -1; // the byte after the one being examined
+
+        long end = length;
+        while( end > 0 ) {
+            int n = (int)Math.min( bufferSize, end );
+            long start = end - n;
+            file.seek( start );
+            file.readFully( b, 0, n );
+
+            for( int i = n - 1; i >= 0; i-- ) {
+                byte c = b[i];
+                boolean terminator = (c == LF) || (c == CR && next != LF);
+                long position = start + i;
+
+            // a terminator at the very end closes the last line instead of starting a new one
+                if( terminator && position != length - 1 ) {
+                    if( --wanted == 0 )
+                        return new Start( position + 1, numberOfLines );
+                }
+                next = c;
+            }
+            end = start;
+        }
+    // the first line has no terminator in front of it
+        return new Start( 0, numberOfLines - wanted + 1 );
+    }
+
+    /**
+     * Reads {@code in} until EOF, passing every line to {@code handler}.
+     * A trailing line without a terminator is also passed on.
+     *
+     * @param in - the stream to split; it is not closed
+     * @param bufferSize - number of bytes read at a time
+     * @param handler - receiver of the lines
+     */
+    static void scan( InputStream in, int bufferSize, Handler handler )
+      throws IOException, InterruptedException {
+        byte[] b = new byte[bufferSize];
+        byte[] pending = new byte[0];
+        int pendingLength = 0;
+        boolean afterCR = false;
+
+        int n;
+        while( (n = in.read( b )) != -1 ) {
+            int lineStart = 0;
+            for( int i = 0; i < n; i++ ) {
+                byte c = b[i];
+                if( c != LF && c != CR ) {
+                    afterCR = false;
+                    continue;
+                }
+
+                if( c == LF && afterCR && i == lineStart ) {
+                // second half of "\r\n"
+                    lineStart = i + 1;
+                    afterCR = false;
+                    continue;
+                }
+
+                if( pendingLength == 0 ) {
+                    handler.onLine( b, lineStart, i - lineStart );
+                }
+                else {
+                    pending = append( pending, pendingLength, b, lineStart, i - lineStart );
+                    pendingLength += i - lineStart;
+                    handler.onLine( pending, 0, pendingLength );
+                    pendingLength = 0;
+                }
+                lineStart = i + 1;
+                afterCR = (c == CR);
+            }
+
+        // carry the unterminated remainder over to the next read
+            if( lineStart < n ) {
+                pending = append( pending, pendingLength, b, lineStart, n - lineStart );
+                pendingLength += n - lineStart;
+            }
+        }
+
+        if( pendingLength > 0 )
+            handler.onLine( pending, 0, pendingLength );
+    }
+
+    private static byte[] append( byte[] dest, int destLength, byte[] src, int offset, int length ) {
+        if( destLength + length > dest.length ) {
+            byte[] grown = new byte[Math.max( destLength + length, dest.length * 2 )];
+            System.arraycopy( dest, 0, grown, 0, destLength );
+            dest = grown;
+        }
+        System.arraycopy( src, offset, dest, destLength, length );
+        return dest;
+    }
+
+    private LineScanner() {}
+
+    private final static byte LF = '\n';
+    private final static byte CR = '\r';
+}
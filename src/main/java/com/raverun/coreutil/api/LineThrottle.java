@@ -0,0 +1,72 @@
+package com.raverun.coreutil.api;
+
+
+/**
+ * Decides which lines survive sampling and rate limiting, and keeps count
+ * of the ones that did not. Runs before a line is decoded, so a dropped 
+ * line costs no allocation. Not thread safe.
+ * <p>
+ * Sampling is deterministic: the first line and every {@code sampleOneIn}-th
+ * line after it are kept. Sampled lines then draw a permit from the optional
+ * {@link TokenBucket}.
+ */
+final class LineThrottle {
+
+    /**
+     * @param sampleOneIn - keep one line in this many; 1 keeps every line
+     * @param bucket - rate limiter, or null for no limit
+     * @param summaryIntervalNanos - minimum time between two summaries
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     */
+    LineThrottle( int sampleOneIn, TokenBucket bucket, long summaryIntervalNanos, long nowNanos ) {
+        _sampleOneIn = sampleOneIn;
+        _bucket = bucket;
+        _summaryIntervalNanos = summaryIntervalNanos;
+        _lastSummary = nowNanos;
+    }
+
+    /**
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     * @return true if the line should be passed on
+     */
+    boolean admit( long nowNanos ) {
+        boolean keep = (_seen++ % _sampleOneIn == 0)
+            && (_bucket == null || _bucket.tryAcquire( nowNanos ));
+
+        if( ! keep )
+            _suppressed++;
+
+        return keep;
+    }
+
+    /**
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     * @return the number of lines dropped since the last summary if a summary
+     *   is due, otherwise 0
+     */
+    long summaryDue( long nowNanos ) {
+        if( _suppressed == 0 || nowNanos - _lastSummary < _summaryIntervalNanos )
+            return 0;
+
+        return drain( nowNanos );
+    }
+
+    /**
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     * @return the number of lines dropped since the last summary, possibly 0
+     */
+    long drain( long nowNanos ) {
+        long count = _suppressed;
+        _suppressed = 0;
+        _lastSummary = nowNanos;
+        return count;
+    }
+
+    private final int _sampleOneIn;
+    private final TokenBucket _bucket;
+    private final long _summaryIntervalNanos;
+
+    private long _seen;
+    private long _suppressed;
+    private long _lastSummary;
+}
@@ -0,0 +1,154 @@
+package com.raverun.coreutil.api;
+
+
+/**
+ * Recognises lines that repeat one of the last few distinct lines passed on,
+ * and counts them instead of passing them on again. Works on raw bytes, so
+ * a collapsed line is never decoded. Not thread safe.
+ * <p>
+ * Lines are compared by a 64-bit FNV-1a hash first and then byte by byte, so
+ * a hash collision cannot swallow a distinct line. A window of 1 collapses
+ * consecutive repeats only.
+ */
+final class RepeatCollapser {
+
+    /**
+     * Receives the repeat counts drained by {@link RepeatCollapser#drain(Handler)}
+     */
+    static interface Handler {
+        /**
+         * The bytes are only valid for the duration of the call.
+         *
+         * @param buf - holds the repeated line
+         * @param offset - start of the line in {@code buf}
+         * @param length - number of bytes in the line
+         * @param times - number of repeats collapsed since the last drain
+         */
+        void onRepeated( byte[] buf, int offset, int length, long times ) throws InterruptedException;
+    }
+
+    /**
+     * @param windowSize - number of distinct lines remembered
+     */
+    RepeatCollapser( int windowSize ) {
+        _hashes = new long[windowSize];
+        _lines = new byte[windowSize][];
+        _lengths = new int[windowSize];
+        _repeats = new long[windowSize];
+    }
+
+    /**
+     * @return true if the line repeats a remembered line and has been counted
+     */
+    boolean collapse( byte[] buf, int offset, int length ) {
+        long hash = hash( buf, offset, length );
+        for( int i = 0; i < _size; i++ ) {
+            if( _hashes[i] == hash && sameBytes( i, buf, offset, length ) ) {
+                if( _repeats[i]++ == 0 )
+                    _pending++;
+                moveToFront( i );
+                return true;
+            }
+        }
+        _lastHash = hash;
+        return false;
+    }
+
+    /**
+     * Remembers the line last rejected by {@link #collapse(byte[], int, int)},
+     * forgetting the least recently seen line if the window is full. Call
+     * {@link #drain(Handler)} first, or the repeats of that line are lost.
+     */
+    void remember( byte[] buf, int offset, int length ) {
+        if( _size < _hashes.length )
+            _size++;
+        else if( _repeats[_size - 1] > 0 )
+            _pending--;
+
+        byte[] reuse = _lines[_size - 1];
+        System.arraycopy( _hashes, 0, _hashes, 1, _size - 1 );
+        System.arraycopy( _lines, 0, _lines, 1, _size - 1 );
+        System.arraycopy( _lengths, 0, _lengths, 1, _size - 1 );
+        System.arraycopy( _repeats, 0, _repeats, 1, _size - 1 );
+
+        if( reuse == null || reuse.length < length )
+            reuse = new byte[length];
+        System.arraycopy( buf, offset, reuse, 0, length );
+
+        _hashes[0] = _lastHash;
+        _lines[0] = reuse;
+        _lengths[0] = length;
+        _repeats[0] = 0;
+    }
+
+    /**
+     * Hands every remembered line with outstanding repeats to {@code handler},
+     * least recently seen first, and resets their counts.
+     */
+    void drain( Handler handler ) throws InterruptedException {
+        for( int i = _size - 1; i >= 0 && _pending > 0; i-- ) {
+            if( _repeats[i] > 0 ) {
+                long times = _repeats[i];
+                _repeats[i] = 0;
+                _pending--;
+                handler.onRepeated( _lines[i], 0, _lengths[i], times );
+            }
+        }
+    }
+
+    static long hash( byte[] buf, int offset, int length ) {
+        long h = FNV_OFFSET_BASIS;
+        for( int i = offset; i < offset + length; i++ ) {
+            h ^= (buf[i] & 0xff);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private boolean sameBytes( int index, byte[] buf, int offset, int length ) {
+        if( _lengths[index] != length )
+            return false;
+
+        byte[] line = _lines[index];
+        for( int i = 0; i < length; i++ ) {
+            if( line[i] != buf[offset + i] )
+                return false;
+        }
+        return true;
+    }
+
+    private void moveToFront( int index ) {
+        if( index == 0 )
+            return;
+
+        long hash = _hashes[index];
+        byte[] line = _lines[index];
+        int length = _lengths[index];
+        long repeats = _repeats[index];
+
+        System.arraycopy( _hashes, 0, _hashes, 1, index );
+        System.arraycopy( _lines, 0, _lines, 1, index );
+        System.arraycopy( _lengths, 0, _lengths, 1, index );
+        System.arraycopy( _repeats, 0, _repeats, 1, index );
+
+        _hashes[0] = hash;
+        _lines[0] = line;
+        _lengths[0] = length;
+        _repeats[0] = repeats;
+    }
+
+    /**
+     * Most recently seen first
+     */
+    private final long[] _hashes;
+    private final byte[][] _lines;
+    private final int[] _lengths;
+    private final long[] _repeats;
+
+    private int _size;
+    private int _pending;
+    private long _lastHash;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+}
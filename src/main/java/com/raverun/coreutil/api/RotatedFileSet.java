@@ -0,0 +1,223 @@
+package com.raverun.coreutil.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+
+/**
+ * The older siblings left behind by log rotation, e.g. {@code app.log.1} and
+ * {@code app.log.2.gz} next to {@code app.log}.
+ * <p>
+ * Numbered siblings are ordered by their number, 1 being the newest. A
+ * number has at most four digits, so a compact date such as
+ * {@code app.log.20110901} is not mistaken for one. If there are no numbered
+ * siblings, dated ones such as {@code app.log-20110901} or
+ * {@code app.log.2011-09-01.gz} are ordered by modification time. Siblings
+ * ending in {@code .gz} are decompressed on the fly; other compression
+ * formats are ignored.
+ */
+final class RotatedFileSet {
+
+    /**
+     * A range of lines in one sibling, streamed by {@link #scan(int, LineScanner.Handler)}
+     */
+    static final class Segment {
+        private Segment( File file, boolean compressed, long startOffset, long endOffset,
+          long skipLines, long lines ) {
+            _file = file;
+            _compressed = compressed;
+            _startOffset = startOffset;
+            _endOffset = endOffset;
+            _skipLines = skipLines;
+            this.lines = lines;
+        }
+
+        /**
+         * Passes the lines of this segment to {@code handler}, oldest first
+         *
+         * @throws IOException if the sibling cannot be read or no longer holds the selected lines
+         */
+        void scan( int bufferSize, final LineScanner.Handler handler ) throws IOException, InterruptedException {
+            if( ! _compressed ) {
+                RandomAccessFile file = new RandomAccessFile( _file, "r" );
+                try {
+                    if( file.length() < _endOffset )
+                        throw new IOException( _file.getName() + ": shrank since it was selected" );
+                    InputStream in = new BoundedInputStream(
+                        Channels.newInputStream( file.getChannel().position( _startOffset ) ),
+                        _endOffset - _startOffset );
+                    LineScanner.scan( in, bufferSize, handler );
+                }
+                finally {
+                    IOUtils.closeQuietly( file );
+                }
+                return;
+            }
+
+            InputStream in = openCompressed( _file, bufferSize );
+            try {
+                final long[] seen = { 0 };
+                LineScanner.scan( in, bufferSize, new LineScanner.Handler() {
+                    public void onLine( byte[] buf, int offset, int length ) throws IOException, InterruptedException {
+                        if( seen[0]++ >= _skipLines )
+                            handler.onLine( buf, offset, length );
+                    }
+                } );
+                if( seen[0] < _skipLines + lines )
+                    throw new IOException( _file.getName() + ": shrank since it was selected" );
+            }
+            finally {
+                IOUtils.closeQuietly( in );
+            }
+        }
+
+        @Override
+        public String toString() {
+            return _file.getName() + " (" + lines + " lines)";
+        }
+
+        /**
+         * number of lines in this segment
+         */
+        final long lines;
+
+        private final File _file;
+        private final boolean _compressed;
+        private final long _startOffset;
+        private final long _endOffset;
+        private final long _skipLines;
+    }
+
+    /**
+     * Selects the last {@code wanted} lines of one sibling. A compressed
+     * sibling is read in full to count its lines, so a truncated or corrupt
+     * archive fails here rather than halfway through streaming it.
+     *
+     * @return the selected lines; fewer than {@code wanted} if the sibling is shorter
+     * @throws IOException if the sibling cannot be read
+     */
+    static Segment select( File sibling, long wanted, int bufferSize ) throws IOException {
+        return sibling.getName().endsWith( GZIP_SUFFIX )
+            ? selectCompressed( sibling, wanted, bufferSize )
+            : selectPlain( sibling, wanted, bufferSize );
+    }
+
+    /**
+     * @return the rotated siblings of {@code file}, newest first
+     */
+    static List<File> olderSiblings( File file ) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        final String name = file.getName();
+        File[] candidates = dir.listFiles( new FilenameFilter() {
+            public boolean accept( File d, String candidate ) {
+                return candidate.length() > name.length() && candidate.startsWith( name )
+                    && DATED.matcher( candidate.substring( name.length() ) ).matches();
+            }
+        } );
+        if( candidates == null )
+            return Collections.emptyList();
+
+        List<File> numbered = new ArrayList<File>();
+        for( File candidate : candidates ) {
+            if( NUMBERED.matcher( candidate.getName().substring( name.length() ) ).matches() )
+                numbered.add( candidate );
+        }
+
+        if( ! numbered.isEmpty() ) {
+            Collections.sort( numbered, new Comparator<File>() {
+                public int compare( File a, File b ) {
+                    long na = rotationNumber( a, name ), nb = rotationNumber( b, name );
+                    return (na < nb) ? -1 : ((na == nb) ? 0 : 1);
+                }
+            } );
+            return numbered;
+        }
+
+        List<File> dated = new ArrayList<File>( Arrays.asList( candidates ) );
+        Collections.sort( dated, new Comparator<File>() {
+            public int compare( File a, File b ) {
+                long ma = a.lastModified(), mb = b.lastModified();
+                if( ma != mb )
+                    return (ma > mb) ? -1 : 1;
+                return b.getName().compareTo( a.getName() );
+            }
+        } );
+        return dated;
+    }
+
+    private static Segment selectPlain( File sibling, long wanted, int bufferSize ) throws IOException {
+        RandomAccessFile file = new RandomAccessFile( sibling, "r" );
+        try {
+            long length = file.length();
+            LineScanner.Start start = LineScanner.findStartOfLastLines( file, length, wanted, bufferSize );
+            return new Segment( sibling, false, start.offset, length, 0, start.lines );
+        }
+        finally {
+            IOUtils.closeQuietly( file );
+        }
+    }
+
+    /**
+     * A compressed sibling cannot be read backwards, so its lines are counted
+     * in one pass and the unwanted ones skipped in the next.
+     */
+    private static Segment selectCompressed( File sibling, long wanted, int bufferSize ) throws IOException {
+        final long[] count = { 0 };
+        InputStream in = openCompressed( sibling, bufferSize );
+        try {
+            LineScanner.scan( in, bufferSize, new LineScanner.Handler() {
+                public void onLine( byte[] buf, int offset, int length ) {
+                    count[0]++;
+                }
+            } );
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            IOUtils.closeQuietly( in );
+        }
+
+        long lines = Math.min( count[0], wanted );
+        return new Segment( sibling, true, 0, 0, count[0] - lines, lines );
+    }
+
+    private static InputStream openCompressed( File file, int bufferSize ) throws IOException {
+        FileInputStream in = new FileInputStream( file );
+        try {
+            return new GZIPInputStream( in, bufferSize );
+        }
+        catch( IOException e ) {
+            IOUtils.closeQuietly( in );
+            throw new IOException( file.getName() + ": " + e.getMessage() );
+        }
+    }
+
+    private static long rotationNumber( File file, String name ) {
+        Matcher m = NUMBERED.matcher( file.getName().substring( name.length() ) );
+        m.matches();
+        return Long.parseLong( m.group( 1 ) );
+    }
+
+    private RotatedFileSet() {}
+
+    private final static String GZIP_SUFFIX = ".gz";
+    private final static Pattern NUMBERED = Pattern.compile( "\\.(\\d{1,4})(\\.gz)?" );
+    private final static Pattern DATED = Pattern.compile( "[.-]\\d[\\d._-]*?(\\.gz)?" );
+}
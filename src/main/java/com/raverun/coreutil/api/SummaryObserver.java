@@ -0,0 +1,29 @@
+package com.raverun.coreutil.api;
+
+
+/**
+ * Optional extension of {@link ContentObserver} for clients that want to hear
+ * about lines the tailer held back. Observers that only implement
+ * {@link ContentObserver} are not sent these summaries.
+ */
+public interface SummaryObserver extends ContentObserver {
+
+    /**
+     * Summary of lines dropped by sampling or rate limiting since the previous
+     * summary. Only sent if the tailer was built with 
+     * {@link FileTailer.Builder#sampleOneIn(int)} or {@link FileTailer.Builder#rateLimit(int, int)}.
+     *
+     * @param count - number of lines dropped, always positive
+     */
+    void onLinesSuppressed( long count );
+
+    /**
+     * Summary of repeats collapsed since {@code line} was last passed on or 
+     * summarised. Only sent if the tailer was built with 
+     * {@link FileTailer.Builder#collapseRepeats(int)}.
+     *
+     * @param line - a line previously received by {@link #onNewLine(String)}
+     * @param times - number of repeats collapsed, always positive
+     */
+    void onLineRepeated( String line, long times );
+}
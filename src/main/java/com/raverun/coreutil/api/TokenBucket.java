@@ -0,0 +1,44 @@
+package com.raverun.coreutil.api;
+
+
+/**
+ * A token bucket holding up to {@code burst} permits, refilled at a
+ * constant rate. Not thread safe.
+ */
+final class TokenBucket {
+
+    /**
+     * @param permitsPerSecond - refill rate
+     * @param burst - capacity of the bucket, which starts full
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     */
+    TokenBucket( int permitsPerSecond, int burst, long nowNanos ) {
+        _permitsPerNano = permitsPerSecond / 1e9;
+        _burst = burst;
+        _tokens = burst;
+        _lastRefill = nowNanos;
+    }
+
+    /**
+     * @param nowNanos - current value of {@link System#nanoTime()}
+     * @return true if a permit was taken
+     */
+    boolean tryAcquire( long nowNanos ) {
+        long elapsed = nowNanos - _lastRefill;
+        if( elapsed > 0 ) {
+            _tokens = Math.min( _burst, _tokens + elapsed * _permitsPerNano );
+            _lastRefill = nowNanos;
+        }
+
+        if( _tokens >= 1 ) {
+            _tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private final double _permitsPerNano;
+    private final double _burst;
+    private double _tokens;
+    private long _lastRefill;
+}
@@ -0,0 +1,351 @@
+package com.raverun.coreutil.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Soak test for {@link FileTailer}: {@link LogWriterSimulator}s append to
+ * their own files while reader threads tail them over and over, alternating
+ * between {@link FileTailer#turnOn()} and {@link FileTailer#readLast()}.
+ * <p>
+ * Every read is checked for lost, duplicated and reordered lines. A read
+ * during which its file was rotated or truncated only has to be in order;
+ * any other read must end with the newest line written before it started,
+ * and hold exactly the requested number of lines unless the file is shorter.
+ * <p>
+ * The report gives the latency from appending the newest line of each read
+ * to its delivery to the observer, and the delivery throughput. The defaults
+ * keep {@code mvn test} short; a real soak is run with e.g.
+ * <pre>
+ *   mvn test -Dtest=FileTailerSoakTest -Dtailog.soak.seconds=600 -Dtailog.soak.rate=200000
+ * </pre>
+ * Properties: {@code tailog.soak.seconds}, {@code .writers}, {@code .readers}
+ * (per writer), {@code .rate} (lines per second per writer), {@code .lineSize},
+ * {@code .rotateEvery}, {@code .truncateEvery} (lines, 0 for never) and
+ * {@code .lines} (the -n of each read).
+ */
+public class FileTailerSoakTest
+    extends TestCase
+{
+    private File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile( "tailog-soak", "" );
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory( _dir );
+    }
+
+    public void testNoLinesLostDuplicatedOrReorderedUnderLoad() throws Exception {
+        long seconds = Long.getLong( "tailog.soak.seconds", 2 );
+        int writers = Integer.getInteger( "tailog.soak.writers", 2 );
+        int readersPerWriter = Integer.getInteger( "tailog.soak.readers", 2 );
+        int rate = Integer.getInteger( "tailog.soak.rate", 20000 );
+        int lineSize = Integer.getInteger( "tailog.soak.lineSize", 120 );
+        long rotateEvery = Long.getLong( "tailog.soak.rotateEvery", 15000 );
+        long truncateEvery = Long.getLong( "tailog.soak.truncateEvery", 25000 );
+        int numberOfLines = Integer.getInteger( "tailog.soak.lines", 2000 );
+        assertTrue( "lineSize must leave room for the header", lineSize >= 64 );
+
+        List<LogWriterSimulator> simulators = new ArrayList<LogWriterSimulator>();
+        List<Reader> readers = new ArrayList<Reader>();
+        for( int w = 0; w < writers; w++ ) {
+            LogWriterSimulator simulator = new LogWriterSimulator(
+                new File( _dir, "app" + w + ".log" ), rate, lineSize, rotateEvery, truncateEvery );
+            simulators.add( simulator );
+            for( int r = 0; r < readersPerWriter; r++ )
+                readers.add( new Reader( simulator, numberOfLines, r % 2 == 0 ) );
+        }
+
+        for( LogWriterSimulator simulator : simulators )
+            simulator.start();
+        Thread.sleep( 100 );
+        for( Reader reader : readers )
+            reader.start();
+
+        long deadline = System.currentTimeMillis() + seconds * 1000;
+        while( System.currentTimeMillis() < deadline )
+            Thread.sleep( 50 );
+
+        for( Reader reader : readers )
+            reader.shutdown();
+        for( LogWriterSimulator simulator : simulators )
+            simulator.shutdown();
+
+    // --- report ---
+        Report report = new Report();
+        for( Reader reader : readers )
+            report.add( reader );
+        int rotations = 0, truncations = 0;
+        for( LogWriterSimulator simulator : simulators ) {
+            assertNull( "writer failed: " + simulator.error(), simulator.error() );
+            rotations += simulator.rotations();
+            truncations += simulator.truncations();
+        }
+        report.print( seconds, rotations, truncations );
+
+        assertEquals( report.failures.toString(), 0, report.failures.size() );
+        for( Reader reader : readers )
+            assertTrue( "a reader never completed a clean read", reader.cleanReads > 0 );
+    }
+
+    public void testConcurrentTailersOnStaticFile() throws Exception {
+        final File file = new File( _dir, "static.log" );
+        StringBuilder content = new StringBuilder();
+        for( int i = 0; i < 20000; i++ )
+            content.append( i ).append( i % 3 == 0 ? "\r\n" : "\n" );
+        FileUtils.writeStringToFile( file, content.toString(), "UTF-8" );
+
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for( int t = 0; t < 8; t++ ) {
+            final boolean threaded = t % 2 == 0;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for( int i = 0; i < 20 && failure.get() == null; i++ ) {
+                            int n = 1 + (i * 997) % 20000;
+                            Observer observer = tail( file, n, threaded, null );
+                            if( observer.error != null ) {
+                                failure.compareAndSet( null, observer.error );
+                                return;
+                            }
+                            for( int k = 0; k < n; k++ ) {
+                                if( observer.lines.size() != n
+                                  || ! observer.lines.get( k ).equals( String.valueOf( 20000 - n + k ) ) ) {
+                                    failure.compareAndSet( null, "wrong lines for -n " + n );
+                                    return;
+                                }
+                            }
+                        }
+                    }
+                    catch( Exception e ) {
+                        failure.compareAndSet( null, e.toString() );
+                    }
+                }
+            };
+            threads.add( thread );
+            thread.start();
+        }
+        for( Thread thread : threads )
+            thread.join();
+
+        assertNull( failure.get(), failure.get() );
+    }
+
+    /**
+     * Tails {@code file} once and waits for the end of the read
+     */
+    private static Observer tail( File file, int numberOfLines, boolean threaded,
+      LogWriterSimulator simulator ) throws IOException, InterruptedException {
+        Observer observer = new Observer( simulator );
+        FileTailer tailer = new FileTailer.Builder( file ).numberOfLines( numberOfLines ).build();
+        tailer.addObserver( observer );
+        if( threaded ) {
+            tailer.turnOn();
+            if( ! observer.finished.await( 30, TimeUnit.SECONDS ) )
+                observer.error = "timed out waiting for onFinish";
+            tailer.turnOff();
+        }
+        else {
+            tailer.readLast();
+        }
+        return observer;
+    }
+
+    /**
+     * Collects the lines of one read, stamping the newest with its latency
+     */
+    private static class Observer implements ContentObserver {
+        Observer( LogWriterSimulator simulator ) {
+            _simulator = simulator;
+        }
+
+        public void onNewLine( String line ) {
+            lines.add( line );
+            if( _simulator != null ) {
+                LogWriterSimulator.Line parsed = LogWriterSimulator.Line.parse( line, _simulator.lineSize() );
+                if( parsed != null )
+                    newestLatencyNanos = System.nanoTime() - parsed.nanos;
+            }
+        }
+
+        public void onFinishNormal() {
+            finished.countDown();
+        }
+
+        public void onFinishWithException( String message ) {
+            error = message;
+            finished.countDown();
+        }
+
+        private final LogWriterSimulator _simulator;
+        final List<String> lines = new ArrayList<String>();
+        final CountDownLatch finished = new CountDownLatch( 1 );
+        volatile String error;
+        long newestLatencyNanos = -1;
+    }
+
+    /**
+     * Tails one simulator's file in a loop and checks every read
+     */
+    private static class Reader extends Thread {
+        Reader( LogWriterSimulator simulator, int numberOfLines, boolean threaded ) {
+            _simulator = simulator;
+            _numberOfLines = numberOfLines;
+            _threaded = threaded;
+            setName( "Reader-" + simulator.file().getName() );
+            setDaemon( true );
+        }
+
+        @Override
+        public void run() {
+            try {
+                while( _running ) {
+                    long changes = _simulator.changes();
+                    long epochFirstSeq = _simulator.epochFirstSeq();
+                    long lastSeq = _simulator.lastSeq();
+
+                    Observer observer;
+                    try {
+                        observer = tail( _simulator.file(), _numberOfLines, _threaded, _simulator );
+                    }
+                    catch( IOException e ) {
+                        observer = null; // e.g. opened between the rename and the new file
+                    }
+                    boolean disturbed = (changes % 2 != 0) || (changes != _simulator.changes());
+
+                    if( observer == null || observer.error != null ) {
+                        if( ! disturbed )
+                            fail( "read failed on an undisturbed file: "
+                                + (observer == null ? "cannot open" : observer.error) );
+                        continue;
+                    }
+
+                    check( observer.lines, disturbed, changes / 2, epochFirstSeq, lastSeq );
+                    if( observer.newestLatencyNanos >= 0 && ! disturbed )
+                        latencies.add( observer.newestLatencyNanos );
+                    linesDelivered += observer.lines.size();
+                    reads++;
+                    if( ! disturbed )
+                        cleanReads++;
+                }
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void check( List<String> lines, boolean disturbed, long epoch,
+          long epochFirstSeq, long lastSeq ) {
+            LogWriterSimulator.Line previous = null;
+            for( int i = 0; i < lines.size(); i++ ) {
+                LogWriterSimulator.Line line = LogWriterSimulator.Line.parse( lines.get( i ), _simulator.lineSize() );
+                if( line == null ) {
+                // a torn last line is what tail shows while a write is in progress
+                    if( disturbed || i == lines.size() - 1 )
+                        continue;
+                    fail( "malformed line " + i + ": " + lines.get( i ) );
+                    return;
+                }
+                if( previous != null ) {
+                    if( line.seq <= previous.seq ) {
+                        fail( "duplicated or reordered: " + previous.seq + " then " + line.seq );
+                        return;
+                    }
+                    if( ! disturbed && line.seq != previous.seq + 1 ) {
+                        fail( "lost lines between " + previous.seq + " and " + line.seq );
+                        return;
+                    }
+                }
+                if( ! disturbed && line.epoch != epoch ) {
+                    fail( "line from epoch " + line.epoch + " in epoch " + epoch );
+                    return;
+                }
+                previous = line;
+            }
+
+            if( disturbed || lastSeq < epochFirstSeq )
+                return; // nothing was known to be in the file when the read started
+
+            if( previous == null || previous.seq < lastSeq ) {
+                fail( "missing newest line " + lastSeq + ", got " + (previous == null ? "nothing" : previous.seq) );
+                return;
+            }
+            LogWriterSimulator.Line first = LogWriterSimulator.Line.parse( lines.get( 0 ), _simulator.lineSize() );
+            if( lines.size() < _numberOfLines && (first == null || first.seq != epochFirstSeq) )
+                fail( "only " + lines.size() + " of " + _numberOfLines + " lines" );
+        }
+
+        private void fail( String message ) {
+            failures.add( getName() + (_threaded ? " [turnOn] " : " [readLast] ") + message );
+        }
+
+        void shutdown() throws InterruptedException {
+            _running = false;
+            join();
+        }
+
+        private final LogWriterSimulator _simulator;
+        private final int _numberOfLines;
+        private final boolean _threaded;
+        private volatile boolean _running = true;
+
+        final List<Long> latencies = new ArrayList<Long>();
+        final List<String> failures = new ArrayList<String>();
+        long linesDelivered;
+        long reads;
+        long cleanReads;
+    }
+
+    private static class Report {
+        void add( Reader reader ) {
+            latencies.addAll( reader.latencies );
+            failures.addAll( reader.failures );
+            linesDelivered += reader.linesDelivered;
+            reads += reader.reads;
+            cleanReads += reader.cleanReads;
+        }
+
+        void print( long seconds, int rotations, int truncations ) {
+            Collections.sort( latencies );
+            System.out.println( "[FileTailerSoakTest] " + seconds + "s, " + reads + " reads ("
+                + cleanReads + " undisturbed), " + rotations + " rotations, " + truncations + " truncations" );
+            System.out.println( "[FileTailerSoakTest] delivered " + linesDelivered + " lines, "
+                + (linesDelivered / Math.max( 1, seconds )) + " lines/s" );
+            System.out.println( "[FileTailerSoakTest] newest line latency ms: p50=" + percentile( 50 )
+                + " p90=" + percentile( 90 ) + " p99=" + percentile( 99 ) + " max=" + percentile( 100 ) );
+            for( String failure : failures )
+                System.out.println( "[FileTailerSoakTest] FAILED " + failure );
+        }
+
+        private String percentile( int p ) {
+            if( latencies.isEmpty() )
+                return "n/a";
+            int index = (int)Math.ceil( p / 100.0 * latencies.size() ) - 1;
+            return String.format( "%.3f", latencies.get( Math.max( 0, index ) ) / 1e6 );
+        }
+
+        final List<Long> latencies = new ArrayList<Long>();
+        final List<String> failures = new ArrayList<String>();
+        long linesDelivered;
+        long reads;
+        long cleanReads;
+    }
+}
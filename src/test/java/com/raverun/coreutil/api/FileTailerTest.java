@@ -0,0 +1,403 @@
+package com.raverun.coreutil.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link FileTailer}
+ */
+public class FileTailerTest
+    extends TestCase
+{
+    private File _file;
+
+    @Override
+    protected void setUp() throws Exception {
+        _file = File.createTempFile( "tailog", ".log" );
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _file.delete();
+    }
+
+    public void testReadLastWithMixedLineTerminators() throws IOException {
+        write( "a\nb\r\nc\rd\ne\n" );
+
+        assertEquals( Arrays.asList( "c", "d", "e" ), readLast( 3 ) );
+        assertEquals( Arrays.asList( "a", "b", "c", "d", "e" ), readLast( 10 ) );
+    }
+
+    public void testReadLastKeepsEmptyLines() throws IOException {
+        write( "a\n\n\nb\r\n\r\n" );
+
+        assertEquals( Arrays.asList( "", "", "b", "" ), readLast( 4 ) );
+    }
+
+    public void testReadLastWithoutTrailingTerminator() throws IOException {
+        write( "a\r\nb\r\nc" );
+
+        assertEquals( Arrays.asList( "b", "c" ), readLast( 2 ) );
+    }
+
+    public void testReadLastOfEmptyFileOrZeroLines() throws IOException {
+        assertEquals( 0, readLast( 5 ).size() );
+
+        write( "a\nb\n" );
+        assertEquals( 0, readLast( 0 ).size() );
+    }
+
+    public void testReadLastAcrossManyBuffers() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for( int i = 0; i < 50000; i++ ) {
+            String line = i + (i % 7 == 0 ? StringUtils.repeat( "x", 20000 ) : "");
+            content.append( line ).append( i % 2 == 0 ? "\r\n" : "\n" );
+            if( i >= 20000 )
+                expected.add( line );
+        }
+        write( content.toString() );
+
+        assertEquals( expected, readLast( 30000 ) );
+    }
+
+    public void testReadLastOnlyOnce() throws IOException {
+        write( "a\n" );
+        FileTailer tailer = new FileTailer.Builder( _file ).build();
+        tailer.readLast();
+        try {
+            tailer.readLast();
+            fail( "expected IllegalStateException" );
+        }
+        catch( IllegalStateException expected ) {
+        }
+    }
+
+    public void testTurnOnDeliversSameLinesAsReadLast() throws Exception {
+        write( "1\n2\n3\n4\n5\n" );
+
+        final List<String> lines = new ArrayList<String>();
+        final CountDownLatch finished = new CountDownLatch( 1 );
+        FileTailer tailer = new FileTailer.Builder( _file ).numberOfLines( 3 ).build();
+        tailer.addObserver( new CollectingObserver( lines ) {
+            @Override
+            public void onFinishNormal() {
+                finished.countDown();
+            }
+        } );
+        tailer.turnOn();
+
+        assertTrue( finished.await( 10, TimeUnit.SECONDS ) );
+        tailer.turnOff();
+        assertEquals( readLast( 3 ), lines );
+    }
+
+    public void testSampleOneInKeepsEveryNthLine() throws IOException {
+        write( lines( 100 ) );
+
+        FileTailer.Builder builder = new FileTailer.Builder( _file ).numberOfLines( 25 ).sampleOneIn( 10 );
+        CollectingObserver observer = readLast( builder );
+
+        assertEquals( Arrays.asList( "75", "85", "95" ), observer.lines );
+        assertEquals( 22, observer.suppressed );
+    }
+
+    public void testRateLimitDropsLinesOverTheBurst() throws IOException {
+        write( lines( 1000 ) );
+
+        FileTailer.Builder builder = new FileTailer.Builder( _file ).numberOfLines( 1000 ).rateLimit( 1, 5 );
+        CollectingObserver observer = readLast( builder );
+
+        assertTrue( observer.lines.size() >= 5 );
+        assertTrue( observer.lines.size() < 1000 );
+        assertEquals( Arrays.asList( "0", "1", "2", "3", "4" ), observer.lines.subList( 0, 5 ) );
+        assertEquals( 1000, observer.lines.size() + observer.suppressed );
+    }
+
+    public void testThrottleArgumentsAreValidated() throws IOException {
+        FileTailer.Builder builder = new FileTailer.Builder( _file );
+        try {
+            builder.sampleOneIn( 0 );
+            fail( "expected IllegalArgumentException" );
+        }
+        catch( IllegalArgumentException expected ) {
+        }
+        try {
+            builder.rateLimit( 10, 0 );
+            fail( "expected IllegalArgumentException" );
+        }
+        catch( IllegalArgumentException expected ) {
+        }
+    }
+
+    public void testCollapseConsecutiveRepeats() throws IOException {
+        write( "a\nb\nb\nb\nc\nc\nb\n" );
+
+        FileTailer.Builder builder = new FileTailer.Builder( _file ).numberOfLines( 10 ).collapseRepeats( 1 );
+
+        assertEquals( Arrays.asList( "a", "b", "*2 b", "c", "*1 c", "b" ), readLast( builder ).lines );
+    }
+
+    public void testCollapseRepeatsWithinWindow() throws IOException {
+        write( "a\nb\na\nb\na\nc\nd\na\n" );
+
+        FileTailer.Builder builder = new FileTailer.Builder( _file ).numberOfLines( 10 ).collapseRepeats( 2 );
+
+        assertEquals( Arrays.asList( "a", "b", "*1 b", "*2 a", "c", "d", "a" ), readLast( builder ).lines );
+    }
+
+    public void testCollapseRepeatsBeforeSampling() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for( int i = 0; i < 1000; i++ )
+            content.append( "retrying\n" );
+        content.append( "0\n1\n2\n3\n" );
+        write( content.toString() );
+
+        FileTailer.Builder builder = new FileTailer.Builder( _file ).numberOfLines( 2000 )
+            .collapseRepeats( 4 ).sampleOneIn( 2 );
+        CollectingObserver observer = readLast( builder );
+
+        assertEquals( Arrays.asList( "retrying", "*999 retrying", "1", "3" ), observer.lines );
+        assertEquals( 2, observer.suppressed );
+    }
+
+    public void testIncludeRotatedContinuesIntoNumberedSiblings() throws IOException {
+        File dir = newTempDir();
+        try {
+            File log = new File( dir, "app.log" );
+            write( log, "7\r\n8\r\n9".getBytes( "UTF-8" ) );
+            write( new File( dir, "app.log.1" ), "4\n5\n6\n".getBytes( "UTF-8" ) );
+            write( new File( dir, "app.log.2.gz" ), gzip( "1\n2\n3\n" ) );
+        // readable, so its line would show up if the walk went too far
+            write( new File( dir, "app.log.3.gz" ), gzip( "0\n" ) );
+
+            FileTailer.Builder builder = new FileTailer.Builder( log ).numberOfLines( 8 ).includeRotated( true );
+            assertEquals( Arrays.asList( "2", "3", "4", "5", "6", "7", "8", "9" ), readLast( builder ).lines );
+
+            builder = new FileTailer.Builder( log ).numberOfLines( 9 ).includeRotated( true );
+            assertEquals( Arrays.asList( "1", "2", "3", "4", "5", "6", "7", "8", "9" ), readLast( builder ).lines );
+
+            builder = new FileTailer.Builder( log ).numberOfLines( 11 ).includeRotated( true );
+            assertEquals( Arrays.asList( "0", "1", "2", "3", "4", "5", "6", "7", "8", "9" ), readLast( builder ).lines );
+
+            builder = new FileTailer.Builder( log ).numberOfLines( 3 ).includeRotated( true );
+            assertEquals( Arrays.asList( "7", "8", "9" ), readLast( builder ).lines );
+
+            builder = new FileTailer.Builder( log ).numberOfLines( 8 );
+            assertEquals( Arrays.asList( "7", "8", "9" ), readLast( builder ).lines );
+        }
+        finally {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    public void testIncludeRotatedStopsAtUnreadableSibling() throws IOException {
+        File dir = newTempDir();
+        try {
+            File log = new File( dir, "app.log" );
+            write( log, "7\n8\n9\n".getBytes( "UTF-8" ) );
+            write( new File( dir, "app.log.1" ), "4\n5\n6\n".getBytes( "UTF-8" ) );
+        // still being compressed by logrotate
+            byte[] gz = gzip( "1\n2\n3\n" );
+            write( new File( dir, "app.log.2.gz" ), Arrays.copyOf( gz, gz.length / 2 ) );
+            write( new File( dir, "app.log.3" ), "0\n".getBytes( "UTF-8" ) );
+
+            FileTailer.Builder builder = new FileTailer.Builder( log ).numberOfLines( 10 ).includeRotated( true );
+            assertEquals( Arrays.asList( "4", "5", "6", "7", "8", "9" ), readLast( builder ).lines );
+
+            write( new File( dir, "app.log.1" ), "not gzip".getBytes( "UTF-8" ) );
+            new File( dir, "app.log.1" ).renameTo( new File( dir, "app.log.1.gz" ) );
+            assertEquals( Arrays.asList( "7", "8", "9" ), readLast( builder ).lines );
+        }
+        finally {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    public void testRotatedSegmentFailsIfSiblingShrinks() throws Exception {
+        File dir = newTempDir();
+        try {
+            File plain = new File( dir, "app.log.1" );
+            write( plain, "1\n2\n3\n".getBytes( "UTF-8" ) );
+            File compressed = new File( dir, "app.log.2.gz" );
+            write( compressed, gzip( "1\n2\n3\n" ) );
+
+            RotatedFileSet.Segment plainSegment = RotatedFileSet.select( plain, 2, 4 );
+            RotatedFileSet.Segment compressedSegment = RotatedFileSet.select( compressed, 2, 4 );
+            write( plain, "1\n".getBytes( "UTF-8" ) );
+            write( compressed, gzip( "1\n" ) );
+
+            LineScanner.Handler ignore = new LineScanner.Handler() {
+                public void onLine( byte[] buf, int offset, int length ) {
+                }
+            };
+            for( RotatedFileSet.Segment segment : Arrays.asList( plainSegment, compressedSegment ) ) {
+                try {
+                    segment.scan( 4, ignore );
+                    fail( segment + " was read with lines missing" );
+                }
+                catch( IOException expected ) {
+                }
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    public void testIncludeRotatedOrdersDatedSiblingsByModificationTime() throws IOException {
+        File dir = newTempDir();
+        try {
+            File log = new File( dir, "app.log" );
+            write( log, "e\n".getBytes( "UTF-8" ) );
+            File newer = new File( dir, "app.log-20110101" );
+            write( newer, "c\nd\n".getBytes( "UTF-8" ) );
+            File older = new File( dir, "app.log-20110102.gz" );
+            write( older, gzip( "a\nb\n" ) );
+            write( new File( dir, "app.log.bak" ), "ignored\n".getBytes( "UTF-8" ) );
+            older.setLastModified( 1000000000000L );
+            newer.setLastModified( 1100000000000L );
+
+            FileTailer.Builder builder = new FileTailer.Builder( log ).numberOfLines( 10 ).includeRotated( true );
+            assertEquals( Arrays.asList( "a", "b", "c", "d", "e" ), readLast( builder ).lines );
+        }
+        finally {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    public void testIncludeRotatedOrdersCompactDatedSiblingsByModificationTime() throws IOException {
+        File dir = newTempDir();
+        try {
+            File log = new File( dir, "app.log" );
+            write( log, "e\n".getBytes( "UTF-8" ) );
+            File older = new File( dir, "app.log.20110901" );
+            write( older, "a\nb\n".getBytes( "UTF-8" ) );
+            File newer = new File( dir, "app.log.20110902" );
+            write( newer, "c\nd\n".getBytes( "UTF-8" ) );
+            older.setLastModified( 1000000000000L );
+            newer.setLastModified( 1100000000000L );
+
+            FileTailer.Builder builder = new FileTailer.Builder( log ).numberOfLines( 3 ).includeRotated( true );
+            assertEquals( Arrays.asList( "c", "d", "e" ), readLast( builder ).lines );
+        }
+        finally {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    public void testPlainContentObserverIsNotSentSummaries() throws IOException {
+        write( lines( 100 ) );
+
+        final List<String> lines = new ArrayList<String>();
+        FileTailer tailer = new FileTailer.Builder( _file ).numberOfLines( 25 )
+            .collapseRepeats( 4 ).sampleOneIn( 10 ).build();
+        tailer.addObserver( new ContentObserver() {
+            public void onNewLine( String line ) {
+                lines.add( line );
+            }
+
+            public void onFinishNormal() {
+            }
+
+            public void onFinishWithException( String error ) {
+                fail( error );
+            }
+        } );
+        tailer.readLast();
+
+        assertEquals( Arrays.asList( "75", "85", "95" ), lines );
+    }
+
+    private List<String> readLast( int numberOfLines ) throws IOException {
+        return readLast( new FileTailer.Builder( _file ).numberOfLines( numberOfLines ) ).lines;
+    }
+
+    private CollectingObserver readLast( FileTailer.Builder builder ) {
+        CollectingObserver observer = new CollectingObserver( new ArrayList<String>() );
+        FileTailer tailer = builder.build();
+        tailer.addObserver( observer );
+        tailer.readLast();
+        return observer;
+    }
+
+    private static String lines( int count ) {
+        StringBuilder content = new StringBuilder();
+        for( int i = 0; i < count; i++ )
+            content.append( i ).append( '\n' );
+        return content.toString();
+    }
+
+    private void write( String content ) throws IOException {
+        write( _file, content.getBytes( "UTF-8" ) );
+    }
+
+    private static void write( File file, byte[] content ) throws IOException {
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            out.write( content );
+        }
+        finally {
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+    private static byte[] gzip( String content ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream( bytes );
+        out.write( content.getBytes( "UTF-8" ) );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static File newTempDir() throws IOException {
+        File dir = File.createTempFile( "tailog", "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static class CollectingObserver implements SummaryObserver {
+        CollectingObserver( List<String> lines ) {
+            this.lines = lines;
+        }
+
+        public void onNewLine( String line ) {
+            lines.add( line );
+        }
+
+        public void onLinesSuppressed( long count ) {
+            assertTrue( count > 0 );
+            suppressed += count;
+        }
+
+        public void onLineRepeated( String line, long times ) {
+            assertTrue( times > 0 );
+            lines.add( "*" + times + " " + line );
+        }
+
+        public void onFinishNormal() {
+        }
+
+        public void onFinishWithException( String error ) {
+            fail( error );
+        }
+
+        final List<String> lines;
+        long suppressed;
+    }
+}
@@ -0,0 +1,195 @@
+package com.raverun.coreutil.api;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Appends numbered lines to a log file at a fixed rate, rotating or truncating
+ * it on a schedule, the way a busy application would.
+ * <p>
+ * Each line reads {@code <epoch> <seq> <nanoTime> <padding>}. The sequence
+ * number grows by one per line across the whole run. The epoch counts the
+ * rotations and truncations so far. {@link #changes()} works like a seqlock:
+ * it is odd while a rotation or truncation is in progress, so a reader that
+ * sees the same even value before and after a read knows the file was only
+ * appended to in between. The nano time is taken just before the line is
+ * written and is used to measure append-to-observer latency.
+ */
+class LogWriterSimulator extends Thread {
+
+    /**
+     * @param file - the log file, created or emptied on start
+     * @param linesPerSecond - target append rate
+     * @param lineSize - number of bytes per line, including the '\n'
+     * @param rotateEvery - rename the file to {@code <file>.1} after this many lines; 0 for never
+     * @param truncateEvery - truncate the file after this many lines; 0 for never
+     */
+    LogWriterSimulator( File file, int linesPerSecond, int lineSize, long rotateEvery, long truncateEvery ) {
+        _file = file;
+        _linesPerSecond = linesPerSecond;
+        _lineSize = lineSize;
+        _rotateEvery = rotateEvery;
+        _truncateEvery = truncateEvery;
+        setName( "LogWriterSimulator-" + file.getName() );
+        setDaemon( true );
+    }
+
+    @Override
+    public void run() {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream( _file );
+            long started = System.nanoTime();
+            long seq = 0;
+            while( _running ) {
+            // --- pace the writes to the target rate ---
+                long due = (System.nanoTime() - started) * _linesPerSecond / NANOS_PER_SECOND;
+                if( seq >= due ) {
+                    Thread.sleep( 1 );
+                    continue;
+                }
+
+                if( seq > 0 && _rotateEvery > 0 && seq % _rotateEvery == 0 ) {
+                    _changes++;
+                    IOUtils.closeQuietly( out );
+                    File rotated = new File( _file.getPath() + ".1" );
+                    rotated.delete();
+                    if( ! _file.renameTo( rotated ) )
+                        throw new IOException( "unable to rotate " + _file );
+                    out = new FileOutputStream( _file );
+                    _rotations++;
+                    finishChange( seq );
+                }
+                else if( seq > 0 && _truncateEvery > 0 && seq % _truncateEvery == 0 ) {
+                    _changes++;
+                    out.getChannel().truncate( 0 );
+                    out.getChannel().position( 0 );
+                    _truncations++;
+                    finishChange( seq );
+                }
+
+                out.write( line( _changes / 2, seq, System.nanoTime() ) );
+                _lastSeq = seq++;
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        catch( IOException e ) {
+            _error = e;
+        }
+        finally {
+            IOUtils.closeQuietly( out );
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        _running = false;
+        join();
+    }
+
+    private void finishChange( long firstSeq ) {
+        _epochFirstSeq = firstSeq;
+        _changes++;
+    }
+
+    private byte[] line( long epoch, long seq, long nanos ) {
+        byte[] b = new byte[_lineSize];
+        byte[] header = (epoch + " " + seq + " " + nanos + " ").getBytes();
+        System.arraycopy( header, 0, b, 0, Math.min( header.length, b.length - 1 ) );
+        for( int i = header.length; i < b.length - 1; i++ )
+            b[i] = 'x';
+        b[b.length - 1] = '\n';
+        return b;
+    }
+
+    /**
+     * A line read back from the file
+     */
+    static class Line {
+        /**
+         * @return null if {@code text} is not a complete line written by a simulator of this {@code lineSize}
+         */
+        static Line parse( String text, int lineSize ) {
+            String[] parts = text.split( " ", 4 );
+            if( text.length() != lineSize - 1 || parts.length != 4 )
+                return null;
+            try {
+                return new Line( Long.parseLong( parts[0] ), Long.parseLong( parts[1] ), Long.parseLong( parts[2] ) );
+            }
+            catch( NumberFormatException e ) {
+                return null;
+            }
+        }
+
+        Line( long epoch, long seq, long nanos ) {
+            this.epoch = epoch;
+            this.seq = seq;
+            this.nanos = nanos;
+        }
+
+        final long epoch;
+        final long seq;
+        final long nanos;
+    }
+
+    /**
+     * Bumped before and after every rotation or truncation; the epoch is half of it
+     */
+    long changes() {
+        return _changes;
+    }
+
+    /**
+     * @return sequence number of the first line of the current epoch
+     */
+    long epochFirstSeq() {
+        return _epochFirstSeq;
+    }
+
+    /**
+     * @return sequence number of the last line fully written, or -1
+     */
+    long lastSeq() {
+        return _lastSeq;
+    }
+
+    int lineSize() {
+        return _lineSize;
+    }
+
+    File file() {
+        return _file;
+    }
+
+    int rotations() {
+        return _rotations;
+    }
+
+    int truncations() {
+        return _truncations;
+    }
+
+    IOException error() {
+        return _error;
+    }
+
+    private final File _file;
+    private final int _linesPerSecond;
+    private final int _lineSize;
+    private final long _rotateEvery;
+    private final long _truncateEvery;
+
+    private volatile boolean _running = true;
+    private volatile long _changes;
+    private volatile long _epochFirstSeq;
+    private volatile long _lastSeq = -1;
+    private volatile int _rotations;
+    private volatile int _truncations;
+    private volatile IOException _error;
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+}